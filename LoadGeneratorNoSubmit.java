@@ -0,0 +1,338 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a running Server with many concurrent Clients and reports throughput
+ * and latency percentiles.
+ *
+ * The load is open-loop: requests are scheduled at a fixed average rate
+ * (with exponentially distributed gaps, as for independent users) whether or
+ * not earlier requests have finished, and each request's latency is measured
+ * from when it was scheduled, not from when a client got round to sending
+ * it. A server that falls behind therefore shows up as growing latency
+ * rather than as a quietly lower request rate.
+ *
+ * Arguments are given as key=value, e.g.
+ *   java LoadGeneratorNoSubmit port=2345 clients=16 rate=200 duration=30
+ *     mix=list:60,send:30,recieve:10 sizes=1024:80,65536:15,1048576:5
+ * mix weights the operations, and sizes weights the file sizes (in bytes)
+ * used by send and recieve.
+ */
+public class LoadGeneratorNoSubmit {
+	
+	//Operations we can generate
+	private static final String LIST = "list";
+	private static final String SEND = "send";
+	private static final String RECIEVE = "recieve";
+	
+	//Settings, with defaults matching TesterNoSubmit's server
+	private String host = "localhost";
+	private int port = 2345;
+	private String password = "hello";
+	private int clients = 8;
+	private double rate = 50;
+	private int duration = 10;
+	private long seed = System.nanoTime();
+	private HashMap<String, Integer> mix = new HashMap<String, Integer>();
+	private HashMap<Integer, Integer> sizes = new HashMap<Integer, Integer>();
+	
+	//Requests waiting for a free client
+	private LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+	
+	//Latencies in nanoseconds of successful requests by operation, and of
+	//requests the server answered with a failure
+	private HashMap<String, List<Long>> latencies = new HashMap<String, List<Long>>();
+	private List<Long> failures = Collections.synchronizedList(new ArrayList<Long>());
+	
+	//Clients whose connection broke, leaving their request unanswered
+	private AtomicLong lostConnections = new AtomicLong();
+	
+	//File contents by size, shared by all the clients
+	private HashMap<Integer, String> contents = new HashMap<Integer, String>();
+	
+	/**
+	 * A request, stamped with the time it was meant to start
+	 */
+	private static class Request {
+		private String operation;
+		private int size;
+		private long scheduledNanos;
+		
+		Request(String operation, int size, long scheduledNanos) {
+			this.operation = operation;
+			this.size = size;
+			this.scheduledNanos = scheduledNanos;
+		}
+	}
+	
+	public static void main(String[] args) throws Exception {
+		LoadGeneratorNoSubmit generator = new LoadGeneratorNoSubmit();
+		generator.parse(args);
+		generator.run();
+	}
+	
+	/**
+	 * Reads key=value arguments over the defaults
+	 */
+	private void parse(String[] args) {
+		String mixArg = "list:60,send:30,recieve:10";
+		String sizesArg = "1024:80,16384:15,262144:5";
+		
+		for(String arg : args) {
+			int eq = arg.indexOf('=');
+			if(eq < 0) throw new IllegalArgumentException("Expected key=value: " + arg);
+			String key = arg.substring(0, eq);
+			String value = arg.substring(eq + 1);
+			
+			if(key.equals("host")) this.host = value;
+			else if(key.equals("port")) this.port = Integer.parseInt(value);
+			else if(key.equals("password")) this.password = value;
+			else if(key.equals("clients")) this.clients = Integer.parseInt(value);
+			else if(key.equals("rate")) this.rate = Double.parseDouble(value);
+			else if(key.equals("duration")) this.duration = Integer.parseInt(value);
+			else if(key.equals("seed")) this.seed = Long.parseLong(value);
+			else if(key.equals("mix")) mixArg = value;
+			else if(key.equals("sizes")) sizesArg = value;
+			else throw new IllegalArgumentException("Unknown argument: " + key);
+		}
+		
+		for(String entry : mixArg.split(",")) {
+			String[] parts = entry.split(":");
+			if(!parts[0].equals(LIST) && !parts[0].equals(SEND) &&
+				!parts[0].equals(RECIEVE)) {
+				
+				throw new IllegalArgumentException("Unknown operation: " + parts[0]);
+			}
+			this.mix.put(parts[0], Integer.parseInt(parts[1]));
+		}
+		for(String entry : sizesArg.split(",")) {
+			String[] parts = entry.split(":");
+			this.sizes.put(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+		}
+	}
+	
+	/**
+	 * Sets up the files, runs the load and prints the report
+	 */
+	private void run() throws Exception {
+		for(String operation : this.mix.keySet()) {
+			this.latencies.put(operation,
+				Collections.synchronizedList(new ArrayList<Long>()));
+		}
+		
+		//Build the file contents, and upload one file of each size for the
+		//recieve operations to fetch
+		Client setup = this.connect();
+		for(int size : this.sizes.keySet()) {
+			this.contents.put(size, LoadGeneratorNoSubmit.content(size));
+			if(!(setup.sendFile("load-" + size + ".txt", this.contents.get(size)) instanceof OK)) {
+				throw new Exception("Could not upload test file of " + size + " bytes");
+			}
+		}
+		setup.clientExit();
+		
+		//Start the clients
+		ArrayList<Thread> workers = new ArrayList<Thread>();
+		for(int i = 0; i < this.clients; i++) {
+			final Client client = this.connect();
+			final String uploadName = "load-upload-" + i + ".txt";
+			Thread worker = new Thread(new Runnable() {
+				public void run() {
+					LoadGeneratorNoSubmit.this.work(client, uploadName);
+				}
+			});
+			worker.start();
+			workers.add(worker);
+		}
+		
+		//Schedule requests until the time is up
+		Random random = new Random(this.seed);
+		long start = System.nanoTime();
+		long end = start + this.duration * 1000000000L;
+		long next = start;
+		long scheduled = 0;
+		while(true) {
+			next += (long) (-Math.log(1 - random.nextDouble()) / this.rate * 1e9);
+			if(next >= end) break;
+			
+			long wait = next - System.nanoTime();
+			if(wait > 0) Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+			
+			String operation = LoadGeneratorNoSubmit.pick(this.mix, random);
+			int size = LoadGeneratorNoSubmit.pick(this.sizes, random);
+			this.queue.put(new Request(operation, size, next));
+			scheduled++;
+		}
+		long backlog = this.queue.size();
+		
+		//Tell the clients to finish what's queued and stop, then wait for them
+		for(int i = 0; i < this.clients; i++) {
+			this.queue.put(new Request(null, 0, 0));
+		}
+		for(Thread worker : workers) worker.join();
+		long elapsed = System.nanoTime() - start;
+		
+		this.report(scheduled, backlog, elapsed);
+	}
+	
+	/**
+	 * Connects and authenticates a client
+	 */
+	private Client connect() throws Exception {
+		Client client = new Client(this.host, this.port);
+		if(!(client.connect() instanceof OK)) {
+			throw new Exception("Could not connect to " + this.host + ":" + this.port);
+		}
+		if(!(client.sendPassword(this.password) instanceof OK)) {
+			throw new Exception("Authentication failed");
+		}
+		return client;
+	}
+	
+	/**
+	 * Runs queued requests on one client until told to stop
+	 */
+	private void work(Client client, String uploadName) {
+		try {
+			while(true) {
+				Request request = this.queue.take();
+				if(request.operation == null) break;
+				
+				Response response;
+				try {
+					if(request.operation.equals(LIST)) {
+						response = client.listDirectory();
+					}
+					else if(request.operation.equals(SEND)) {
+						response = client.sendFile(uploadName,
+							this.contents.get(request.size));
+					}
+					else {
+						response = client.receiveFile("load-" + request.size + ".txt");
+					}
+				} catch(Exception e) {
+					//The connection is unusable now, so give up on this client.
+					//The other clients take over its share of the queue.
+					this.lostConnections.incrementAndGet();
+					e.printStackTrace();
+					return;
+				}
+				
+				long latency = System.nanoTime() - request.scheduledNanos;
+				if(response instanceof OK || response instanceof DirectoryListing ||
+					response instanceof FileContent) {
+					
+					this.latencies.get(request.operation).add(latency);
+				}
+				else {
+					this.failures.add(latency);
+				}
+			}
+			client.clientExit();
+		
+		} catch(Exception e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Prints throughput, how many requests failed or were never completed,
+	 * and latency percentiles of successful requests, overall and per
+	 * operation
+	 */
+	private void report(long scheduled, long backlog, long elapsedNanos) {
+		ArrayList<Long> all = new ArrayList<Long>();
+		for(List<Long> operationLatencies : this.latencies.values()) {
+			all.addAll(operationLatencies);
+		}
+		
+		ArrayList<Long> failed = new ArrayList<Long>(this.failures);
+		
+		//Requests in flight on a broken connection, or left in the queue after
+		//every client's connection broke
+		long notCompleted = scheduled - all.size() - failed.size();
+		
+		double seconds = elapsedNanos / 1e9;
+		System.out.println("Target rate:    " + this.rate + " req/s over " +
+			this.duration + "s with " + this.clients + " clients");
+		System.out.println("Scheduled:      " + scheduled + " (" + backlog +
+			" still queued when scheduling stopped)");
+		System.out.println("Succeeded:      " + all.size() + " in " +
+			String.format("%.1f", seconds) + "s = " +
+			String.format("%.1f", all.size() / seconds) + " req/s");
+		System.out.println("Failed:         " + failed.size() +
+			" (answered with a failure response)");
+		System.out.println("Not completed:  " + notCompleted + " (" +
+			this.lostConnections.get() + " client connections lost)");
+		System.out.println();
+		System.out.println(String.format("%-10s %8s %10s %10s %10s %10s %10s",
+			"op", "count", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+		LoadGeneratorNoSubmit.printLatencies("all", all);
+		for(String operation : this.latencies.keySet()) {
+			LoadGeneratorNoSubmit.printLatencies(operation,
+				new ArrayList<Long>(this.latencies.get(operation)));
+		}
+		
+		//Failures are kept out of the rows above, as they are often much
+		//faster than real work
+		if(!failed.isEmpty()) LoadGeneratorNoSubmit.printLatencies("failed", failed);
+	}
+	
+	private static void printLatencies(String name, ArrayList<Long> latencies) {
+		Collections.sort(latencies);
+		System.out.println(String.format("%-10s %8d %10.2f %10.2f %10.2f %10.2f %10.2f",
+			name, latencies.size(),
+			percentile(latencies, 0.5), percentile(latencies, 0.9),
+			percentile(latencies, 0.99), percentile(latencies, 0.999),
+			percentile(latencies, 1)));
+	}
+	
+	/**
+	 * @param sorted latencies in nanoseconds, sorted
+	 * @param fraction the percentile wanted, e.g. 0.99
+	 * @return that percentile in milliseconds
+	 */
+	private static double percentile(List<Long> sorted, double fraction) {
+		if(sorted.isEmpty()) return 0;
+		int index = (int) Math.ceil(sorted.size() * fraction) - 1;
+		return sorted.get(Math.max(0, index)) / 1e6;
+	}
+	
+	/**
+	 * Picks a key at random in proportion to its weight
+	 */
+	private static <T> T pick(HashMap<T, Integer> weights, Random random) {
+		int total = 0;
+		for(int weight : weights.values()) total += weight;
+		int target = random.nextInt(total);
+		for(T key : weights.keySet()) {
+			target -= weights.get(key);
+			if(target < 0) return key;
+		}
+		throw new IllegalStateException("No weights to pick from");
+	}
+	
+	/**
+	 * Builds file content of the given size, made of 64 byte lines. It never
+	 * ends in a newline: Client.sendFile adds one after the last line, and a
+	 * second would be sent as an extra, undeclared line. Also used by the
+	 * benchmarks, so that both send the same kind of files.
+	 */
+	public static String content(int bytes) {
+		StringBuilder content = new StringBuilder(bytes + 64);
+		while(content.length() < bytes) {
+			for(int i = 0; i < 63; i++) content.append((char) ('a' + i % 26));
+			content.append('\n');
+		}
+		content.setLength(bytes);
+		if(bytes > 0 && content.charAt(bytes - 1) == '\n') {
+			content.setCharAt(bytes - 1, 'z');
+		}
+		return content.toString();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,27 @@
+//Candidate No: 18512
+
+/**
+ * Management interface for ServerMetrics. JMX requires standard MBean
+ * interfaces to be public, so this lives in its own file.
+ */
+public interface ServerMetricsMBean {
+	
+	public long getTotalConnections();
+	public long getActiveConnections();
+	public long getRejectedConnections();
+	public long getErrors();
+	public long getCharsIn();
+	public long getCharsOut();
+	public long getLookupCount();
+	public long getLookupMeanMicros();
+	public long getLookupMaxMicros();
+	
+	/**
+	 * @return one entry per command, as NAME=count/mean/p50/p99/max with
+	 * latencies in microseconds
+	 */
+	public String[] getCommandLatencies();
+	
+	public String getReport();
+	public void setSlowRequestMillis(long millis);
+}
\ No newline at end of file
@@ -0,0 +1,38 @@
+import networkscw.benchmarks.ClientTarget;
+import networkscw.benchmarks.ServerTarget;
+
+/**
+ * Passes benchmark calls straight through to a Client
+ */
+public class ClientHarness implements ClientTarget {
+	
+	Client client;
+	
+	ClientHarness(Client client) {
+		this.client = client;
+	}
+	
+	public Object sendPassword() throws Exception {
+		return this.client.sendPassword(ServerTarget.PASSWORD);
+	}
+	
+	public Object listDirectory() throws Exception {
+		return this.client.listDirectory();
+	}
+	
+	public Object stats() throws Exception {
+		return this.client.stats();
+	}
+	
+	public Object sendFile(String fileName, String fileContent) throws Exception {
+		return this.client.sendFile(fileName, fileContent);
+	}
+	
+	public Object receiveFile(String fileName) throws Exception {
+		return this.client.receiveFile(fileName);
+	}
+	
+	public void exit() throws Exception {
+		this.client.clientExit();
+	}
+}
@@ -0,0 +1,22 @@
+import networkscw.benchmarks.LookupTarget;
+
+/**
+ * Passes benchmark calls straight through to DNSLookup and Page
+ */
+public class LookupHarness implements LookupTarget {
+	
+	private DNSLookup dns = new DNSLookup();
+	private Page page = new Page();
+	
+	public String lookup(String fqdn) throws Exception {
+		return this.dns.lookup(fqdn);
+	}
+	
+	public String reverseLookup(String ip) throws Exception {
+		return this.dns.reverseLookup(ip);
+	}
+	
+	public boolean check(String fullURL) throws Exception {
+		return this.page.check(fullURL).ok();
+	}
+}
@@ -0,0 +1,77 @@
+import java.net.ServerSocket;
+import java.util.ArrayList;
+
+import networkscw.benchmarks.ClientTarget;
+import networkscw.benchmarks.ServerTarget;
+
+/**
+ * Runs a Server on a free loopback port in a background thread
+ */
+public class ServerHarness implements ServerTarget {
+	
+	//The port the server is listening on
+	private int port;
+	
+	//The thread running Server.run()
+	private Thread thread;
+	
+	public void start(int forbiddenSize) throws Exception {
+		
+		//Addresses in the form the server compares them, e.g. "/10.0.3.232",
+		//none of which match the loopback address
+		final ArrayList<String> forbidden = new ArrayList<String>();
+		for(int i = 0; i < forbiddenSize; i++) {
+			forbidden.add("/10." + (i >> 16 & 255) + "." + (i >> 8 & 255) + "." + (i & 255));
+		}
+		
+		//Find a free port by briefly binding to one
+		ServerSocket probe = new ServerSocket(0);
+		this.port = probe.getLocalPort();
+		probe.close();
+		
+		final Server server = new Server();
+		this.thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					server.run(ServerHarness.this.port, PASSWORD, forbidden);
+				} catch(Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		this.thread.setDaemon(true);
+		this.thread.start();
+		
+		//Wait for the server to come up
+		for(int attempt = 0; ; attempt++) {
+			Client probeClient = new Client("localhost", this.port);
+			if(probeClient.connect() instanceof OK) {
+				probeClient.clientExit();
+				return;
+			}
+			if(attempt == 100) throw new Exception("Server did not start");
+			Thread.sleep(50);
+		}
+	}
+	
+	public void stop() throws Exception {
+		ClientHarness client = this.connect(true);
+		client.client.serverExit();
+		this.thread.join(10000);
+	}
+	
+	public ClientHarness connect(boolean authenticate) throws Exception {
+		Client client = new Client("localhost", this.port);
+		if(!(client.connect() instanceof OK)) {
+			throw new Exception("Could not connect to the server");
+		}
+		if(authenticate && !(client.sendPassword(PASSWORD) instanceof OK)) {
+			throw new Exception("Could not authenticate with the server");
+		}
+		return new ClientHarness(client);
+	}
+	
+	public String content(int bytes) {
+		return LoadGeneratorNoSubmit.content(bytes);
+	}
+}
@@ -0,0 +1,60 @@
+package networkscw.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How quickly the server accepts connections when its firewall list is
+ * large. None of the forbidden addresses match the loopback client, so every
+ * connection goes through the full list check and reverse lookup. Each
+ * connection makes one unauthenticated round trip before exiting, so that
+ * the operation isn't complete until the server has accepted it and started
+ * its handler.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AcceptBenchmark {
+	
+	@Param({"0", "1000", "100000"})
+	int forbiddenSize;
+	
+	ServerTarget server;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		this.server = Targets.newServer();
+		this.server.start(this.forbiddenSize);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		this.server.stop();
+	}
+	
+	@Benchmark
+	public Object connect() throws Exception {
+		ClientTarget client = this.server.connect(false);
+		
+		//Answered with a DirectoryProblem, as the client hasn't authenticated
+		Object response = client.listDirectory();
+		client.exit();
+		return response;
+	}
+}
@@ -0,0 +1,19 @@
+package networkscw.benchmarks;
+
+/**
+ * A Client connected to a ServerTarget. Each method returns the Client's
+ * Response, for benchmarks to hand to the Blackhole.
+ */
+public interface ClientTarget {
+	
+	public Object sendPassword() throws Exception;
+	public Object listDirectory() throws Exception;
+	public Object stats() throws Exception;
+	public Object sendFile(String fileName, String fileContent) throws Exception;
+	public Object receiveFile(String fileName) throws Exception;
+	
+	/**
+	 * Disconnects with CLIENT_EXIT
+	 */
+	public void exit() throws Exception;
+}
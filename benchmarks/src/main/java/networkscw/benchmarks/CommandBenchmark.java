@@ -0,0 +1,74 @@
+package networkscw.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Round trip latency of small commands over loopback, with a connection per
+ * benchmark thread
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandBenchmark {
+	
+	@State(Scope.Benchmark)
+	public static class ServerState {
+		ServerTarget server;
+		
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			this.server = Targets.newServer();
+			this.server.start(0);
+		}
+		
+		@TearDown(Level.Trial)
+		public void tearDown() throws Exception {
+			this.server.stop();
+		}
+	}
+	
+	@State(Scope.Thread)
+	public static class ClientState {
+		ClientTarget client;
+		
+		@Setup(Level.Trial)
+		public void setup(ServerState state) throws Exception {
+			this.client = state.server.connect(true);
+		}
+		
+		@TearDown(Level.Trial)
+		public void tearDown() throws Exception {
+			this.client.exit();
+		}
+	}
+	
+	@Benchmark
+	public Object sendPassword(ClientState state) throws Exception {
+		return state.client.sendPassword();
+	}
+	
+	@Benchmark
+	public Object listDirectory(ClientState state) throws Exception {
+		return state.client.listDirectory();
+	}
+	
+	@Benchmark
+	public Object stats(ClientState state) throws Exception {
+		return state.client.stats();
+	}
+}
@@ -0,0 +1,85 @@
+package networkscw.benchmarks;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * DNSLookup and Page.check against local stand-ins: the loopback address for
+ * DNS, and an in-process HTTP server for pages, so results don't depend on
+ * the network
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LookupBenchmark {
+	
+	LookupTarget target;
+	HttpServer http;
+	String okPage;
+	String missingPage;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		this.target = Targets.newLookup();
+		
+		this.http = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		this.http.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws java.io.IOException {
+				//No body, so the client can reuse the connection
+				int code = exchange.getRequestURI().getPath().equals("/ok") ? 200 : 404;
+				exchange.sendResponseHeaders(code, -1);
+				exchange.close();
+			}
+		});
+		this.http.start();
+		
+		String base = "http://localhost:" + this.http.getAddress().getPort();
+		this.okPage = base + "/ok";
+		this.missingPage = base + "/missing";
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		this.http.stop(0);
+	}
+	
+	@Benchmark
+	public String lookup() throws Exception {
+		return this.target.lookup("localhost");
+	}
+	
+	@Benchmark
+	public String reverseLookup() throws Exception {
+		return this.target.reverseLookup("127.0.0.1");
+	}
+	
+	@Benchmark
+	public boolean checkOkPage() throws Exception {
+		return this.target.check(this.okPage);
+	}
+	
+	@Benchmark
+	public boolean checkMissingPage() throws Exception {
+		return this.target.check(this.missingPage);
+	}
+}
@@ -0,0 +1,16 @@
+package networkscw.benchmarks;
+
+/**
+ * DNSLookup and Page, driven through an interface for the same reason as
+ * ServerTarget
+ */
+public interface LookupTarget {
+	
+	public String lookup(String fqdn) throws Exception;
+	public String reverseLookup(String ip) throws Exception;
+	
+	/**
+	 * @return Page.check(fullURL).ok()
+	 */
+	public boolean check(String fullURL) throws Exception;
+}
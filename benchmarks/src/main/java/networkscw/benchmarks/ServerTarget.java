@@ -0,0 +1,39 @@
+package networkscw.benchmarks;
+
+/**
+ * A Server running in the background for benchmarks to connect to. The
+ * server's classes are in the default package, which benchmark classes can't
+ * reference, so they are driven through this interface instead (see
+ * Targets).
+ */
+public interface ServerTarget {
+	
+	public static final String PASSWORD = "bench";
+	
+	/**
+	 * Starts a server on a free loopback port and waits for it to accept
+	 * connections
+	 * @param forbiddenSize how many (non-matching) addresses to put in the
+	 * server's firewall list
+	 */
+	public void start(int forbiddenSize) throws Exception;
+	
+	/**
+	 * Asks the server to exit and waits for it to do so
+	 */
+	public void stop() throws Exception;
+	
+	/**
+	 * @param authenticate whether to send the password after connecting
+	 * @return a connected client
+	 */
+	public ClientTarget connect(boolean authenticate) throws Exception;
+	
+	/**
+	 * Builds file content to transfer, the same as LoadGeneratorNoSubmit
+	 * sends
+	 * @param bytes the size wanted
+	 * @return the content
+	 */
+	public String content(int bytes);
+}
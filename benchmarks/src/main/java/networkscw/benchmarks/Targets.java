@@ -0,0 +1,19 @@
+package networkscw.benchmarks;
+
+/**
+ * Creates the default-package implementations of the target interfaces by
+ * name. This only happens during benchmark setup; the benchmarks themselves
+ * make ordinary interface calls.
+ */
+public class Targets {
+	
+	private Targets() {}
+	
+	public static ServerTarget newServer() throws Exception {
+		return (ServerTarget) Class.forName("ServerHarness").getDeclaredConstructor().newInstance();
+	}
+	
+	public static LookupTarget newLookup() throws Exception {
+		return (LookupTarget) Class.forName("LookupHarness").getDeclaredConstructor().newInstance();
+	}
+}
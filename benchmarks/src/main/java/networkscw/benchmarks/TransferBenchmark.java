@@ -0,0 +1,99 @@
+package networkscw.benchmarks;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Upload (Client.sendFile) and download (Client.receiveFile) throughput
+ * across file sizes. Multiply ops/s by the size for bytes per second.
+ *
+ * The practical ceiling is a few MB: the server builds an uploaded file with
+ * string concatenation, which is quadratic in its size, so a 4 MB upload
+ * already takes around 30 seconds. "-p size=4194304" measures that; larger
+ * sizes need the server's concatenation fixed first.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+	
+	@State(Scope.Benchmark)
+	public static class ServerState {
+		@Param({"1024", "16384", "262144", "1048576"})
+		int size;
+		
+		ServerTarget server;
+		String content;
+		File download;
+		
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			this.server = Targets.newServer();
+			this.content = this.server.content(this.size);
+			
+			//Put a file in place for the download benchmark
+			this.download = new File("jmh-download-" + this.size + ".tmp");
+			FileWriter writer = new FileWriter(this.download);
+			writer.write(this.content);
+			writer.close();
+			
+			this.server.start(0);
+		}
+		
+		@TearDown(Level.Trial)
+		public void tearDown() throws Exception {
+			this.server.stop();
+			this.download.delete();
+		}
+	}
+	
+	//The benchmarks take only a ClientState, which reaches the ServerState
+	//through its own setup. JMH then tears the clients down before the
+	//server; listing both as benchmark parameters stops the server first.
+	@State(Scope.Thread)
+	public static class ClientState {
+		ServerState server;
+		ClientTarget client;
+		File upload;
+		
+		@Setup(Level.Trial)
+		public void setup(ServerState server) throws Exception {
+			this.server = server;
+			this.client = server.server.connect(true);
+			this.upload = new File("jmh-upload-" + Thread.currentThread().getId() + ".tmp");
+		}
+		
+		@TearDown(Level.Trial)
+		public void tearDown() throws Exception {
+			this.client.exit();
+			this.upload.delete();
+		}
+	}
+	
+	@Benchmark
+	public Object upload(ClientState state) throws Exception {
+		return state.client.sendFile(state.upload.getName(), state.server.content);
+	}
+	
+	@Benchmark
+	public Object download(ClientState state) throws Exception {
+		return state.client.receiveFile(state.server.download.getName());
+	}
+}
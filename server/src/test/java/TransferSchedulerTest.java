@@ -0,0 +1,81 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * Drives the TransferScheduler from several threads at once, as Handlers do
+ */
+public class TransferSchedulerTest {
+
+	private static final int THREADS = 4;
+	private static final long BYTES_PER_THREAD = 500000;
+
+	/**
+	 * Transfers from one client address share that client's bucket, so the
+	 * one holding the turn can empty it while the others wait. They must still
+	 * all finish.
+	 */
+	@Test(timeout = 20000)
+	public void transfersFromOneClientAllFinish() throws Exception {
+		TransferScheduler scheduler = new TransferScheduler(0, 1000000);
+		long elapsed = run(scheduler, false);
+
+		//The bucket starts with a second's worth, so 2MB at 1MB/s takes at
+		//least a second
+		assertTrue("Finished too quickly: " + elapsed + "ns", elapsed >= 900000000L);
+	}
+
+	@Test(timeout = 20000)
+	public void transfersFromDifferentClientsAllFinish() throws Exception {
+		TransferScheduler scheduler = new TransferScheduler(0, 1000000);
+		run(scheduler, true);
+	}
+
+	/**
+	 * Runs THREADS transfers to completion, charging 1000 bytes at a time
+	 * @param distinct whether each transfer comes from a different client
+	 * @return the time taken in nanoseconds
+	 */
+	private static long run(final TransferScheduler scheduler, final boolean distinct)
+		throws Exception {
+
+		final AtomicLong moved = new AtomicLong();
+		final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+
+		long start = System.nanoTime();
+		for(int i = 0; i < THREADS; i++) {
+			final String client = distinct ? "/c" + i : "/c";
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					TransferScheduler.Transfer transfer = scheduler.begin(client);
+					try {
+						for(long sent = 0; sent < BYTES_PER_THREAD; sent += 1000) {
+							scheduler.charge(transfer, 1000);
+							moved.addAndGet(1000);
+						}
+					} catch(Throwable t) {
+						synchronized(errors) {
+							errors.add(t);
+						}
+					} finally {
+						scheduler.end(transfer);
+					}
+				}
+			});
+			thread.setDaemon(true);
+			thread.start();
+			threads.add(thread);
+		}
+		for(Thread thread : threads) thread.join();
+		long elapsed = System.nanoTime() - start;
+
+		assertTrue("Transfers failed: " + errors, errors.isEmpty());
+		assertEquals(THREADS * BYTES_PER_THREAD, moved.get());
+		return elapsed;
+	}
+}
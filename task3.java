@@ -2,16 +2,29 @@
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 class Server {
 	
@@ -19,12 +32,80 @@ class Server {
 	public static final int SUCCESS = 1;
 	
 	//Is the server running?
-	private boolean running = true;
+	private volatile boolean running = true;
+	
+	//The ServerSocket that accepts incoming connections. Kept as a field so
+	//that a serverExit() from any Handler can unblock the accept loop
+	private ServerSocket welcomeSocket;
+	
+	//Shares file transfer bandwidth out between all the handlers
+	private TransferScheduler scheduler;
+	
+	//Makes uploaded files durable before they are acknowledged
+	private FileCommitter committer = new FileCommitter(FileCommitter.NONE, 0);
+	
+	//Counters and latency histograms, exposed over JMX and the STATS command
+	private ServerMetrics metrics = new ServerMetrics();
 	
 	//We need to keep a reference to all the handlers as we need to force them
 	//all to close if any authenticated client initiates a serverExit()
 	ArrayList<Handler> handlers = new ArrayList<Handler>();
 	
+	/**
+	 * Creates a server with no limit on transfer bandwidth
+	 */
+	public Server() {
+		this(0, 0);
+	}
+	
+	/**
+	 * Creates a server that limits file transfer bandwidth
+	 * @param globalRate the most bytes per second the server will transfer
+	 * across all clients, or 0 for no limit
+	 * @param clientRate the most bytes per second the server will transfer
+	 * to or from any one client address, or 0 for no limit
+	 */
+	public Server(long globalRate, long clientRate) {
+		this.scheduler = new TransferScheduler(globalRate, clientRate);
+	}
+	
+	/**
+	 * Sets the share of the bandwidth a client's transfers get relative to
+	 * other clients' transfers when the server is busy
+	 * @param clientIP the client's address, as given by the connection
+	 * @param weight the client's weight (the default is 1)
+	 */
+	public void setClientWeight(String clientIP, int weight) {
+		this.scheduler.setWeight(clientIP, weight);
+	}
+	
+	/**
+	 * Sets how uploaded files are made durable before the client is told
+	 * they were stored. Should be called before run().
+	 * @param mode one of FileCommitter.NONE, FileCommitter.FSYNC or
+	 * FileCommitter.GROUP_COMMIT
+	 * @param windowMillis for GROUP_COMMIT, how long to wait for other uploads
+	 * to finish so that they can be synced together
+	 */
+	public void setDurability(int mode, long windowMillis) {
+		this.committer = new FileCommitter(mode, windowMillis);
+	}
+	
+	/**
+	 * Sets how long a command may take before it is logged as slow
+	 * @param millis the threshold in milliseconds, or 0 to log nothing
+	 */
+	public void setSlowRequestMillis(long millis) {
+		this.metrics.setSlowRequestMillis(millis);
+	}
+	
+	/**
+	 * @return this server's metrics
+	 */
+	public ServerMetrics getMetrics() {
+		return this.metrics;
+	}
+	
 	/**
 	 * The "port" variable holds the port number at which the
 	 * server will run. The variable "forbidden" implements basic
@@ -48,51 +129,87 @@ class Server {
 	 */
 	public void run(int port, String password, List<String> forbidden) throws Exception {
 		
-		//The ServerSocket that will accept incoming connections
-		ServerSocket welcomeSocket = new ServerSocket(port);
+		//Open the ServerSocket that will accept incoming connections
+		this.welcomeSocket = new ServerSocket(port);
 		
-		while(this.running) {
-			
-			//Accept a new connection
-			Socket clientSocket = welcomeSocket.accept();
-			String clientIP = clientSocket.getInetAddress().toString();
-			
-			//Should we reject the client?
-			boolean reject = false;
-			
-			try {
-				//Reject the connector if their IP (or a corresponding
-				//domain name) is blacklisted
-				if(forbidden.contains(clientIP) ||
-					forbidden.contains(Server.reverseLookup(clientIP))) { 
+		//Publish the metrics over JMX. The STATS command still works if this
+		//fails, e.g. because another server in this JVM uses the same port.
+		MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+		ObjectName metricsName = null;
+		try {
+			metricsName = new ObjectName("Server:type=Metrics,port=" + port);
+			mbs.registerMBean(this.metrics, metricsName);
+		} catch(JMException e) {
+			metricsName = null;
+		}
+		
+		try {
+			while(this.running) {
+				
+				//Accept a new connection
+				Socket clientSocket;
+				try {
+					clientSocket = this.welcomeSocket.accept();
+				} catch(IOException e) {
+					//The socket was closed by a serverExit(), so stop accepting
+					if(!this.running) break;
+					throw e;
+				}
+				String clientIP = clientSocket.getInetAddress().toString();
+				
+				//Should we reject the client?
+				boolean reject = false;
+				
+				try {
+					//Reject the connector if their IP (or a corresponding
+					//domain name) is blacklisted
+					if(forbidden.contains(clientIP)) reject = true;
+					else {
+						long lookupStart = System.nanoTime();
+						String fqdn;
+						try {
+							fqdn = Server.reverseLookup(clientIP);
+						} finally {
+							this.metrics.recordLookup(System.nanoTime() - lookupStart);
+						}
+						if(forbidden.contains(fqdn)) reject = true;
+					}
+				} catch(Exception e) {
+					//If we couldn't resolve their hostname in DNS, the connector is
+					//allowed to connect. If we found that the resolved hostname was
+					//forbidden, we prevent them connecting. 
+				}
+				
+				//Prevent the connection if necessary
+				if(reject) {
+					this.metrics.recordRejected();
+					clientSocket.close();
+				}
+				
+				//Else we'll allow them to connect
+				else {
 					
-					reject = true;
+					//Start a new thread for the connector
+					Handler h = new Handler(clientSocket, password);
+					this.metrics.connectionOpened();
+					handlers.add(h);
+					new Thread(h).start();
 				}
-			} catch(Exception e) {
-				//If we couldn't resolve their hostname in DNS, the connector is
-				//allowed to connect. If we found that the resolved hostname was
-				//forbidden, we prevent them connecting. 
 			}
 			
-			//Prevent the connection if necessary
-			if(reject) clientSocket.close();
+			//Close the ServerSocket
+			this.welcomeSocket.close();
 			
-			//Else we'll allow them to connect
-			else {
-				
-				//Start a new thread for the connector
-				Handler h = new Handler(clientSocket, password);
-				handlers.add(h);
-				h.run();
+			//Terminate all the handlers
+			for(Handler h : handlers) {
+				h.stop();
 			}
-		}
-		
-		//Close the ServerSocket
-		welcomeSocket.close();
-		
-		//Terminate all the handlers
-		for(Handler h : handlers) {
-			h.stop();
+			
+			//Stop the background committer, if there is one
+			this.committer.stop();
+		} finally {
+			//Withdraw the metrics from JMX, even if the server failed
+			if(metricsName != null) mbs.unregisterMBean(metricsName);
 		}
 	}
 	
@@ -117,8 +234,15 @@ class Server {
 		//The socket this handler runs on
 		private Socket mySocket;
 		
+		//The client's address, used to apply per-client bandwidth limits
+		private String clientIP;
+		
 		//Are we still accepting commands from the client?
-		private boolean running;
+		private volatile boolean running;
+		
+		//The thread running this handler, interrupted on stop() in case it is
+		//waiting for bandwidth
+		private volatile Thread thread;
 		
 		//Has the client authenticated?
 		private boolean authenticated;
@@ -139,6 +263,7 @@ class Server {
 		public Handler(Socket mySocket, String password) throws Exception {
 			this.password = password;
 			this.mySocket = mySocket;
+			this.clientIP = mySocket.getInetAddress().toString();
 			this.running = true;
 			this.authenticated = false;
 			this.inFromClient = new BufferedReader(
@@ -149,13 +274,25 @@ class Server {
 		/**
 		 * Closes this Handler and all its connections
 		 */
-		private void stop() throws Exception {
+		private synchronized void stop() throws Exception {
 			if(this.running) {
+				//Mark the handler stopped first, so that its own thread knows
+				//the exceptions caused by closing its connection are expected
+				this.running = false;
+				
+				//Close the socket before the streams. The handler's thread may
+				//be blocked in readLine(), holding the reader's lock, and
+				//closing the socket is what makes it give that lock up.
+				mySocket.close();
 				this.inFromClient.close();
 				this.outToClient.close();
-				mySocket.close();
+				
+				//Wake the handler's thread if it is waiting in the scheduler
+				Thread thread = this.thread;
+				if(thread != null && thread != Thread.currentThread()) {
+					thread.interrupt();
+				}
 			}
-			this.running = false;
 		}
 		
 		/**
@@ -163,25 +300,48 @@ class Server {
 		 * commands one by one
 		 */
 		public void run() {	
+			this.thread = Thread.currentThread();
 			try {
 				while(running) {
 					
-					//Get the next command
-					int nextCommand =
-						Integer.parseInt(this.inFromClient.readLine());
+					//Get the next command. A client that disconnects without
+					//sending CLIENT_EXIT ends the connection the same way.
+					String commandLine = this.inFromClient.readLine();
+					if(commandLine == null) {
+						this.stop();
+						break;
+					}
+					int nextCommand = Integer.parseInt(commandLine);
 					
-					//Cascaded if/else statements to handle the request
-					if(nextCommand == Client.SEND_PASSWORD) this.sendPassword();
-					else if(nextCommand == Client.CLIENT_EXIT) this.clientExit();
-					else if(nextCommand == Client.SERVER_EXIT) this.serverExit();
-					else if(nextCommand == Client.LIST_DIRECTORY) this.listDirectory();
-					else if(nextCommand == Client.SEND_FILE) this.sendFile();
-					else if(nextCommand == Client.RECIEVE_FILE) this.recieveFile();
-					else /*Nothing to do*/;
-
+					//Time the command from when it was read, including commands
+					//that fail
+					long start = System.nanoTime();
+					try {
+						//Cascaded if/else statements to handle the request
+						if(nextCommand == Client.SEND_PASSWORD) this.sendPassword();
+						else if(nextCommand == Client.CLIENT_EXIT) this.clientExit();
+						else if(nextCommand == Client.SERVER_EXIT) this.serverExit();
+						else if(nextCommand == Client.LIST_DIRECTORY) this.listDirectory();
+						else if(nextCommand == Client.SEND_FILE) this.sendFile();
+						else if(nextCommand == Client.RECIEVE_FILE) this.recieveFile();
+						else if(nextCommand == Client.STATS) this.stats();
+						else /*Nothing to do*/;
+					} finally {
+						metrics.recordCommand(nextCommand, System.nanoTime() - start,
+							this.clientIP);
+					}
 				}
 				
-			} catch(Exception e) {e.printStackTrace();}
+			} catch(Exception e) {
+				//Exceptions caused by the server closing this connection from
+				//another thread are expected
+				if(this.running) {
+					metrics.recordError();
+					e.printStackTrace();
+				}
+			} finally {
+				metrics.connectionClosed();
+			}
 		}
 		
 		private void sendPassword() throws Exception {
@@ -222,8 +382,9 @@ class Server {
 				//Stop this connection
 				this.stop();
 				
-				//Stop the server
+				//Stop the server, unblocking its accept loop
 				Server.this.running = false;
+				Server.this.welcomeSocket.close();
 			}
 			else {
 				//Send a failed response code
@@ -247,6 +408,10 @@ class Server {
 				//Send an allowed response code
 				this.outToClient.writeBytes(Server.SUCCESS + "\n");
 				
+				//Account for the listing's bandwidth without making it queue
+				//behind any bulk transfers
+				scheduler.control(this.clientIP, listing.length() + 1);
+				
 				//Send that listing to the client
 				this.outToClient.writeBytes(listing + "\n");
 				
@@ -257,6 +422,23 @@ class Server {
 			}
 		}
 		
+		/**
+		 * Sends the server's statistics to the client on a single line
+		 */
+		private void stats() throws Exception {
+			if(this.authenticated) {
+				//Send an allowed response code
+				this.outToClient.writeBytes(Server.SUCCESS + "\n");
+				
+				//Send the statistics
+				this.outToClient.writeBytes(metrics.getReport() + "\n");
+			}
+			else {
+				//Send a failed response code
+				this.outToClient.writeBytes(Server.FAILURE + "\n");
+			}
+		}
+		
 		/**
 		 * Recieves a file from the client
 		 * Named according to the client, hence the confusing name
@@ -272,10 +454,27 @@ class Server {
 				//Get the file line length from the client
 				int fileLength = Integer.parseInt(this.inFromClient.readLine());
 				
-				//Get the file from the client
+				//Get the file from the client, waiting for bandwidth to be
+				//scheduled after each chunk
 				String fileContent = "";
-				for(int i = 0; i < fileLength; i++) {
-					fileContent += this.inFromClient.readLine() + "\n";
+				long chars = 0;
+				TransferScheduler.Transfer transfer = scheduler.begin(this.clientIP);
+				try {
+					for(int i = 0; i < fileLength; i++) {
+						String line = this.inFromClient.readLine();
+						
+						//The client disconnected part way through the file
+						if(line == null) {
+							throw new IOException("Connection closed during upload");
+						}
+						
+						scheduler.charge(transfer, line.length() + 1);
+						fileContent += line + "\n";
+						chars += line.length() + 1;
+					}
+				} finally {
+					scheduler.end(transfer);
+					metrics.addCharsIn(chars);
 				}
 				
 				//Create a file object from the filename
@@ -283,13 +482,22 @@ class Server {
 				
 				try {
 					//If there isn't a file in the directory with the given name, create one
-					if(!file.exists()) file.createNewFile();
+					boolean created = !file.exists() && file.createNewFile();
 					
 					//Write the contents into the file
-					BufferedWriter bw = 
-						new BufferedWriter(new FileWriter(file.getAbsoluteFile()));
-					bw.write(fileContent);
-					bw.close();
+					FileOutputStream fos = new FileOutputStream(file.getAbsoluteFile());
+					BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fos));
+					try {
+						bw.write(fileContent);
+						bw.flush();
+						
+						//Wait until the file (and its directory entry, if it's
+						//new) is durable, as configured
+						committer.commit(fos.getChannel(),
+							created ? file.getAbsoluteFile().getParentFile() : null);
+					} finally {
+						bw.close();
+					}
 					
 					//Send success message to client
 					this.outToClient.writeBytes(Server.SUCCESS + "\n");
@@ -348,9 +556,19 @@ class Server {
 				//Tell the client how many lines we're sending
 				this.outToClient.writeBytes(fileLines.size() + "\n");
 				
-				//Send those lines
-				for(String line : fileLines) {
-					this.outToClient.writeBytes(line + "\n");
+				//Send those lines, waiting for bandwidth to be scheduled
+				//after each chunk
+				long chars = 0;
+				TransferScheduler.Transfer transfer = scheduler.begin(this.clientIP);
+				try {
+					for(String line : fileLines) {
+						this.outToClient.writeBytes(line + "\n");
+						scheduler.charge(transfer, line.length() + 1);
+						chars += line.length() + 1;
+					}
+				} finally {
+					scheduler.end(transfer);
+					metrics.addCharsOut(chars);
 				}
 			}
 			else {
@@ -362,6 +580,770 @@ class Server {
 	}
 }
 
+/**
+ * Shares file transfer bandwidth between all of a server's handlers. Each
+ * client address and the server as a whole can be given a token bucket rate
+ * limit, and whenever transfers have to wait for bandwidth it is handed out
+ * to them in weighted fair order (each transfer's next chunk is ordered by a
+ * virtual finish time, which advances by the chunk size over the client's
+ * weight). Small control messages, such as directory listings, are charged
+ * against the buckets but never wait, so they aren't held up by bulk
+ * transfers. With no limits set, nothing is scheduled and transfers never
+ * touch the scheduler's lock.
+ */
+class TransferScheduler {
+	
+	//Transfers pay for bandwidth in chunks of this many bytes, rather than
+	//taking the lock for every line
+	public static final int CHUNK = 16384;
+	
+	//Rate limits in bytes per second, 0 meaning no limit
+	private final long globalRate;
+	private final long clientRate;
+	private final boolean limited;
+	
+	//Guards everything below. Each waiting transfer waits on its own
+	//Condition, so that a grant only wakes the transfer that goes next.
+	private final ReentrantLock lock = new ReentrantLock();
+	
+	//Bucket shared by every client
+	private TokenBucket global;
+	
+	//Per-client buckets, and how many transfers each client has running so
+	//that we can forget about clients once they're idle and their bucket has
+	//refilled
+	private HashMap<String, TokenBucket> clientBuckets =
+		new HashMap<String, TokenBucket>();
+	private HashMap<String, Integer> clientTransfers =
+		new HashMap<String, Integer>();
+	
+	//Relative weights of clients that shouldn't get the default share of 1
+	private HashMap<String, Integer> weights = new HashMap<String, Integer>();
+	
+	//Transfers currently waiting for bandwidth
+	private ArrayList<Transfer> waiting = new ArrayList<Transfer>();
+	
+	//Virtual time of the most recent grant, used as the starting point for
+	//transfers that have been idle
+	private double virtualTime = 0;
+	
+	/**
+	 * A single file transfer being scheduled on behalf of a client
+	 */
+	class Transfer {
+		private String client;
+		private int weight;
+		private double finishTag;
+		private int requested;
+		private Condition turn;
+		
+		//Bytes moved but not yet paid for. Only touched by the handler
+		//thread that owns the transfer.
+		private int unpaid;
+		
+		private Transfer(String client, int weight) {
+			this.client = client;
+			this.weight = weight;
+			this.finishTag = TransferScheduler.this.virtualTime;
+			this.turn = TransferScheduler.this.lock.newCondition();
+		}
+	}
+	
+	/**
+	 * Creates a scheduler
+	 * @param globalRate bytes per second allowed across all clients, or 0 for
+	 * no limit
+	 * @param clientRate bytes per second allowed for each client address, or
+	 * 0 for no limit
+	 */
+	public TransferScheduler(long globalRate, long clientRate) {
+		this.globalRate = globalRate;
+		this.clientRate = clientRate;
+		this.limited = globalRate > 0 || clientRate > 0;
+		this.global = new TokenBucket(globalRate);
+	}
+	
+	/**
+	 * Sets the relative share of bandwidth a client's transfers receive
+	 * @param client the client's address
+	 * @param weight the weight, which must be at least 1
+	 */
+	public void setWeight(String client, int weight) {
+		if(weight < 1) throw new IllegalArgumentException("Weight must be positive");
+		this.lock.lock();
+		try {
+			this.weights.put(client, weight);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+	
+	/**
+	 * Registers the start of a transfer for a client
+	 * @param client the client's address
+	 * @return the Transfer to pass to charge() and end(), or null if there
+	 * are no limits (which charge() and end() accept)
+	 */
+	public Transfer begin(String client) {
+		if(!this.limited) return null;
+		this.lock.lock();
+		try {
+			Integer count = this.clientTransfers.get(client);
+			this.clientTransfers.put(client, count == null ? 1 : count + 1);
+			if(!this.clientBuckets.containsKey(client)) {
+				this.clientBuckets.put(client, new TokenBucket(this.clientRate));
+			}
+			Integer weight = this.weights.get(client);
+			return new Transfer(client, weight == null ? 1 : weight);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+	
+	/**
+	 * Registers the end of a transfer, whether or not it succeeded. Any
+	 * bytes not yet paid for are charged without waiting; a client left in
+	 * debt keeps its bucket, so its next transfer pays it off.
+	 * @param transfer the finished transfer
+	 */
+	public void end(Transfer transfer) {
+		if(transfer == null) return;
+		this.lock.lock();
+		try {
+			long now = System.nanoTime();
+			this.take(transfer.client, transfer.unpaid, now);
+			transfer.unpaid = 0;
+			
+			int count = this.clientTransfers.get(transfer.client) - 1;
+			if(count > 0) this.clientTransfers.put(transfer.client, count);
+			else {
+				this.clientTransfers.remove(transfer.client);
+				
+				//Forget idle clients whose buckets are full, as a new bucket
+				//would be no different
+				Iterator<String> clients = this.clientBuckets.keySet().iterator();
+				while(clients.hasNext()) {
+					String client = clients.next();
+					if(!this.clientTransfers.containsKey(client) &&
+						this.clientBuckets.get(client).isFull(now)) {
+						
+						clients.remove();
+					}
+				}
+			}
+			this.signalNext(now);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+	
+	/**
+	 * Records bytes a transfer has moved, and once a chunk's worth has built
+	 * up, blocks until the transfer is allowed to pay for it
+	 * @param transfer the transfer moving the bytes, or null if unlimited
+	 * @param bytes the number of bytes just sent or received
+	 */
+	public void charge(Transfer transfer, int bytes) throws InterruptedException {
+		if(transfer == null) return;
+		transfer.unpaid += bytes;
+		if(transfer.unpaid >= CHUNK) {
+			int chunk = transfer.unpaid;
+			transfer.unpaid = 0;
+			this.acquire(transfer, chunk);
+		}
+	}
+	
+	/**
+	 * Blocks until it is the transfer's turn and its buckets have tokens,
+	 * then charges it for the given number of bytes
+	 */
+	private void acquire(Transfer transfer, int bytes) throws InterruptedException {
+		this.lock.lock();
+		try {
+			//An idle transfer can't claim bandwidth it didn't use while idle
+			transfer.finishTag = Math.max(transfer.finishTag, this.virtualTime);
+			transfer.requested = bytes;
+			this.waiting.add(transfer);
+			
+			try {
+				while(true) {
+					long now = System.nanoTime();
+					TokenBucket own = this.clientBuckets.get(transfer.client);
+					Transfer next;
+					
+					//Wait for our own client's bucket to refill
+					if(!own.isReady(now)) {
+						transfer.turn.awaitNanos(own.nanosUntilReady(now));
+					}
+					//Wait to be signalled when another transfer hands on the turn.
+					//The transfer whose turn it is may have gone to sleep while
+					//its bucket was empty, so make sure it is awake first.
+					else if((next = this.next(now)) != transfer) {
+						next.turn.signal();
+						transfer.turn.await();
+					}
+					//It's our turn; wait for the shared bucket to refill
+					else if(!this.global.isReady(now)) {
+						transfer.turn.awaitNanos(this.global.nanosUntilReady(now));
+					}
+					else break;
+				}
+				
+				//Charge the buckets and move the transfer along in virtual time
+				this.take(transfer.client, bytes, System.nanoTime());
+				this.virtualTime = transfer.finishTag;
+				transfer.finishTag += (double) bytes / transfer.weight;
+				
+			} finally {
+				//Whether granted or interrupted, hand the turn on
+				this.waiting.remove(transfer);
+				this.signalNext(System.nanoTime());
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+	
+	/**
+	 * Charges a control message to the buckets without waiting, so that bulk
+	 * transfers give up the bandwidth it used instead
+	 * @param client the client's address
+	 * @param bytes the size of the message
+	 */
+	public void control(String client, int bytes) {
+		if(!this.limited) return;
+		this.lock.lock();
+		try {
+			long now = System.nanoTime();
+			this.take(client, bytes, now);
+			
+			//Emptying a bucket may have changed whose turn it is
+			this.signalNext(now);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+	
+	/**
+	 * Takes tokens from the shared bucket and the client's bucket, if it has
+	 * one
+	 */
+	private void take(String client, int bytes, long now) {
+		this.global.take(bytes, now);
+		TokenBucket bucket = this.clientBuckets.get(client);
+		if(bucket != null) bucket.take(bytes, now);
+	}
+	
+	/**
+	 * Finds the waiting transfer whose turn it is: the one with the earliest
+	 * finish tag among those whose client's bucket has tokens
+	 */
+	private Transfer next(long now) {
+		Transfer next = null;
+		double nextTag = 0;
+		for(Transfer t : this.waiting) {
+			if(!this.clientBuckets.get(t.client).isReady(now)) continue;
+			double tag = t.finishTag + (double) t.requested / t.weight;
+			if(next == null || tag < nextTag) {
+				next = t;
+				nextTag = tag;
+			}
+		}
+		return next;
+	}
+	
+	/**
+	 * Wakes the transfer whose turn it is. If every waiting transfer's client
+	 * is out of tokens, wakes the one whose bucket refills first instead, so
+	 * that it waits out the refill on a timer; refills signal nobody, so
+	 * without this the waiting transfers could sleep forever.
+	 */
+	private void signalNext(long now) {
+		Transfer next = this.next(now);
+		if(next == null) {
+			long soonest = Long.MAX_VALUE;
+			for(Transfer t : this.waiting) {
+				long wait = this.clientBuckets.get(t.client).nanosUntilReady(now);
+				if(wait < soonest) {
+					next = t;
+					soonest = wait;
+				}
+			}
+		}
+		if(next != null) next.turn.signal();
+	}
+	
+	/**
+	 * A token bucket holding up to a second's worth of bytes. Tokens may go
+	 * negative, which lets a chunk larger than the bucket through and makes
+	 * later chunks wait until the debt is paid off.
+	 */
+	private static class TokenBucket {
+		private long rate;
+		private double tokens;
+		private long lastRefill;
+		
+		TokenBucket(long rate) {
+			this.rate = rate;
+			this.tokens = rate;
+			this.lastRefill = System.nanoTime();
+		}
+		
+		private void refill(long now) {
+			if(this.rate <= 0) return;
+			this.tokens = Math.min(this.rate,
+				this.tokens + (now - this.lastRefill) * this.rate / 1e9);
+			this.lastRefill = now;
+		}
+		
+		boolean isFull(long now) {
+			if(this.rate <= 0) return true;
+			this.refill(now);
+			return this.tokens >= this.rate;
+		}
+		
+		boolean isReady(long now) {
+			if(this.rate <= 0) return true;
+			this.refill(now);
+			return this.tokens > 0;
+		}
+		
+		long nanosUntilReady(long now) {
+			if(this.isReady(now)) return 0;
+			return (long) (-this.tokens * 1e9 / this.rate) + 1;
+		}
+		
+		void take(int bytes, long now) {
+			if(this.rate <= 0) return;
+			this.refill(now);
+			this.tokens -= bytes;
+		}
+	}
+}
+
+/**
+ * Makes uploaded files durable before they are acknowledged. With NONE, files
+ * are left to the operating system to write out whenever it likes. With
+ * FSYNC, each upload forces its own file to disk. With GROUP_COMMIT, uploads
+ * are handed to a background thread which waits a short window for other
+ * uploads to complete, then forces the whole batch (and each directory
+ * holding new files only once) before releasing all of them together.
+ */
+class FileCommitter implements Runnable {
+	
+	//Durability modes
+	public static final int NONE = 0;
+	public static final int FSYNC = 1;
+	public static final int GROUP_COMMIT = 2;
+	
+	private int mode;
+	private long windowMillis;
+	
+	//Uploads waiting for the next group commit
+	private ArrayList<Pending> pending = new ArrayList<Pending>();
+	
+	//The background committer thread, started by the first group commit
+	private Thread thread;
+	private volatile boolean running = true;
+	
+	/**
+	 * An upload waiting to be committed
+	 */
+	private static class Pending {
+		private FileChannel channel;
+		private File directory;
+		private boolean done = false;
+		private IOException error;
+		
+		Pending(FileChannel channel, File directory) {
+			this.channel = channel;
+			this.directory = directory;
+		}
+		
+		synchronized void finish(IOException error) {
+			if(this.error == null) this.error = error;
+			this.done = true;
+			notifyAll();
+		}
+		
+		synchronized void await() throws IOException, InterruptedException {
+			while(!this.done) wait();
+			if(this.error != null) throw this.error;
+		}
+	}
+	
+	/**
+	 * Creates a committer
+	 * @param mode NONE, FSYNC or GROUP_COMMIT
+	 * @param windowMillis how long a group commit waits to collect uploads
+	 */
+	public FileCommitter(int mode, long windowMillis) {
+		if(mode != NONE && mode != FSYNC && mode != GROUP_COMMIT) {
+			throw new IllegalArgumentException("Unknown durability mode " + mode);
+		}
+		this.mode = mode;
+		this.windowMillis = windowMillis;
+	}
+	
+	/**
+	 * Blocks until a written file is as durable as the mode requires
+	 * @param channel the channel the file was written through, which must
+	 * stay open until this returns
+	 * @param directory the directory to sync if the file was newly created, or
+	 * null if it already existed
+	 */
+	public void commit(FileChannel channel, File directory)
+		throws IOException, InterruptedException {
+		
+		if(this.mode == NONE) return;
+		
+		//Queue the upload for the committer thread, unless it has been
+		//stopped and may not be around to drain the queue
+		Pending p = null;
+		if(this.mode == GROUP_COMMIT) {
+			synchronized(this) {
+				if(this.running) {
+					if(this.thread == null) {
+						this.thread = new Thread(this);
+						this.thread.setDaemon(true);
+						this.thread.start();
+					}
+					p = new Pending(channel, directory);
+					this.pending.add(p);
+					notifyAll();
+				}
+			}
+		}
+		
+		//Wait for the batch, or sync the file ourselves
+		if(p != null) p.await();
+		else {
+			channel.force(true);
+			if(directory != null) FileCommitter.syncDirectory(directory);
+		}
+	}
+	
+	/**
+	 * Stops the committer thread. Uploads already queued are still committed,
+	 * and any that finish afterwards are synced individually.
+	 */
+	public synchronized void stop() {
+		this.running = false;
+		notifyAll();
+	}
+	
+	/**
+	 * Runs the group commit loop
+	 */
+	public void run() {
+		while(true) {
+			ArrayList<Pending> batch;
+			try {
+				//Wait for an upload to arrive, then give others a chance to
+				//join it
+				synchronized(this) {
+					while(this.running && this.pending.isEmpty()) wait();
+					if(!this.running && this.pending.isEmpty()) return;
+				}
+				if(this.running) Thread.sleep(this.windowMillis);
+			} catch(InterruptedException e) {
+				//Commit whatever has been queued before giving up
+				this.running = false;
+			}
+			
+			synchronized(this) {
+				batch = this.pending;
+				this.pending = new ArrayList<Pending>();
+			}
+			
+			//Force every file in the batch
+			ArrayList<File> directories = new ArrayList<File>();
+			for(Pending p : batch) {
+				try {
+					p.channel.force(true);
+				} catch(IOException e) {
+					p.finish(e);
+				}
+				if(p.directory != null && !directories.contains(p.directory)) {
+					directories.add(p.directory);
+				}
+			}
+			
+			//Then each directory holding new files, once per batch
+			for(File directory : directories) {
+				try {
+					FileCommitter.syncDirectory(directory);
+				} catch(IOException e) {
+					for(Pending p : batch) {
+						if(directory.equals(p.directory)) p.finish(e);
+					}
+				}
+			}
+			
+			//Release the uploads
+			for(Pending p : batch) p.finish(null);
+		}
+	}
+	
+	/**
+	 * Forces a directory's entries to disk so that newly created files in it
+	 * survive a crash
+	 * @param directory the directory to sync
+	 */
+	private static void syncDirectory(File directory) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+		} catch(IOException e) {
+			//Some platforms (e.g. Windows) can't open directories, and don't
+			//need them syncing
+			return;
+		}
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+}
+
+/**
+ * Counts connections, commands and file content transferred by a Server,
+ * and keeps a latency histogram for each command. Everything is recorded with
+ * atomic counters into arrays allocated up front, so recording doesn't
+ * allocate or lock; only reading the statistics back does.
+ */
+class ServerMetrics implements ServerMetricsMBean {
+	
+	//Names of the commands, indexed by their Client.* opcodes
+	private static final String[] COMMANDS = { "SEND_PASSWORD", "CLIENT_EXIT",
+		"SERVER_EXIT", "LIST_DIRECTORY", "SEND_FILE", "RECIEVE_FILE", "STATS" };
+	
+	private AtomicLong totalConnections = new AtomicLong();
+	private AtomicLong activeConnections = new AtomicLong();
+	private AtomicLong rejectedConnections = new AtomicLong();
+	private AtomicLong errors = new AtomicLong();
+	
+	//Characters of file content moved by SEND_FILE and RECIEVE_FILE,
+	//including line endings. Downloads go out at one byte per character, but
+	//uploads are decoded with the platform charset, so they may have been
+	//more bytes on the wire.
+	private AtomicLong charsIn = new AtomicLong();
+	private AtomicLong charsOut = new AtomicLong();
+	
+	//One histogram per command, and one for reverse DNS lookups
+	private Histogram[] commands = new Histogram[COMMANDS.length];
+	private Histogram lookups = new Histogram();
+	
+	//Commands slower than this are logged, 0 meaning never
+	private volatile long slowRequestNanos = 0;
+	
+	/**
+	 * A histogram of durations. Each power of two nanoseconds is split into
+	 * 16 equal sub-buckets, so a percentile read back is never more than 1/16
+	 * above the true value.
+	 */
+	static class Histogram {
+		private static final int SUB_BITS = 4;
+		private static final int SUB_BUCKETS = 1 << SUB_BITS;
+		
+		private AtomicLongArray buckets =
+			new AtomicLongArray((64 - SUB_BITS) * SUB_BUCKETS);
+		private AtomicLong count = new AtomicLong();
+		private AtomicLong totalNanos = new AtomicLong();
+		private AtomicLong maxNanos = new AtomicLong();
+		
+		void record(long nanos) {
+			if(nanos < 0) nanos = 0;
+			this.buckets.incrementAndGet(Histogram.index(nanos));
+			this.count.incrementAndGet();
+			this.totalNanos.addAndGet(nanos);
+			long max = this.maxNanos.get();
+			while(nanos > max && !this.maxNanos.compareAndSet(max, nanos)) {
+				max = this.maxNanos.get();
+			}
+		}
+		
+		/**
+		 * Finds a duration's bucket. Durations below SUB_BUCKETS have a bucket
+		 * each; above that, the bucket is picked by the leading one bit and
+		 * the SUB_BITS bits after it.
+		 */
+		private static int index(long nanos) {
+			if(nanos < SUB_BUCKETS) return (int) nanos;
+			int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BITS;
+			return (shift + 1) * SUB_BUCKETS + (int) (nanos >>> shift) - SUB_BUCKETS;
+		}
+		
+		/**
+		 * @return the largest duration that falls in the given bucket
+		 */
+		private static long upperBound(int index) {
+			if(index < SUB_BUCKETS) return index;
+			int shift = index / SUB_BUCKETS - 1;
+			long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+			return lower + (1L << shift) - 1;
+		}
+		
+		long getCount() {
+			return this.count.get();
+		}
+		
+		long getMeanMicros() {
+			long n = this.count.get();
+			return n == 0 ? 0 : this.totalNanos.get() / n / 1000;
+		}
+		
+		long getMaxMicros() {
+			return this.maxNanos.get() / 1000;
+		}
+		
+		/**
+		 * @param fraction the percentile wanted, e.g. 0.99
+		 * @return the upper bound of the bucket holding that percentile, in
+		 * microseconds, which is within 1/16 of the true value
+		 */
+		long getPercentileMicros(double fraction) {
+			long n = this.count.get();
+			if(n == 0) return 0;
+			long target = (long) Math.ceil(n * fraction);
+			long seen = 0;
+			for(int i = 0; i < this.buckets.length(); i++) {
+				seen += this.buckets.get(i);
+				if(seen >= target) {
+					return Math.min(Histogram.upperBound(i), this.maxNanos.get()) / 1000;
+				}
+			}
+			return this.getMaxMicros();
+		}
+		
+		String summary() {
+			return this.getCount() + "/" + this.getMeanMicros() + "/" +
+				this.getPercentileMicros(0.5) + "/" + this.getPercentileMicros(0.99) +
+				"/" + this.getMaxMicros();
+		}
+	}
+	
+	public ServerMetrics() {
+		for(int i = 0; i < this.commands.length; i++) {
+			this.commands[i] = new Histogram();
+		}
+	}
+	
+	public void setSlowRequestMillis(long millis) {
+		this.slowRequestNanos = millis * 1000000;
+	}
+	
+	public void connectionOpened() {
+		this.totalConnections.incrementAndGet();
+		this.activeConnections.incrementAndGet();
+	}
+	
+	public void connectionClosed() {
+		this.activeConnections.decrementAndGet();
+	}
+	
+	public void recordRejected() {
+		this.rejectedConnections.incrementAndGet();
+	}
+	
+	public void recordError() {
+		this.errors.incrementAndGet();
+	}
+	
+	public void recordLookup(long nanos) {
+		this.lookups.record(nanos);
+	}
+	
+	public void addCharsIn(long chars) {
+		this.charsIn.addAndGet(chars);
+	}
+	
+	public void addCharsOut(long chars) {
+		this.charsOut.addAndGet(chars);
+	}
+	
+	/**
+	 * Records how long a command took, logging it if it was slow
+	 * @param command the command's Client.* opcode
+	 * @param nanos how long it took
+	 * @param clientIP the client that sent it, for the slow request log
+	 */
+	public void recordCommand(int command, long nanos, String clientIP) {
+		if(command < 0 || command >= this.commands.length) return;
+		this.commands[command].record(nanos);
+		
+		long slow = this.slowRequestNanos;
+		if(slow > 0 && nanos >= slow) {
+			System.err.println("Slow request: " + COMMANDS[command] + " from " +
+				clientIP + " took " + nanos / 1000000 + "ms");
+		}
+	}
+	
+	public long getTotalConnections() {
+		return this.totalConnections.get();
+	}
+	
+	public long getActiveConnections() {
+		return this.activeConnections.get();
+	}
+	
+	public long getRejectedConnections() {
+		return this.rejectedConnections.get();
+	}
+	
+	public long getErrors() {
+		return this.errors.get();
+	}
+	
+	public long getCharsIn() {
+		return this.charsIn.get();
+	}
+	
+	public long getCharsOut() {
+		return this.charsOut.get();
+	}
+	
+	public long getLookupCount() {
+		return this.lookups.getCount();
+	}
+	
+	public long getLookupMeanMicros() {
+		return this.lookups.getMeanMicros();
+	}
+	
+	public long getLookupMaxMicros() {
+		return this.lookups.getMaxMicros();
+	}
+	
+	public String[] getCommandLatencies() {
+		String[] latencies = new String[COMMANDS.length];
+		for(int i = 0; i < COMMANDS.length; i++) {
+			latencies[i] = COMMANDS[i] + "=" + this.commands[i].summary();
+		}
+		return latencies;
+	}
+	
+	/**
+	 * Builds a one line report of all the statistics. Latencies are given as
+	 * count/mean/p50/p99/max, in microseconds.
+	 */
+	public String getReport() {
+		StringBuilder report = new StringBuilder();
+		report.append("connections=").append(this.getTotalConnections());
+		report.append(" active=").append(this.getActiveConnections());
+		report.append(" rejected=").append(this.getRejectedConnections());
+		report.append(" errors=").append(this.getErrors());
+		report.append(" charsIn=").append(this.getCharsIn());
+		report.append(" charsOut=").append(this.getCharsOut());
+		report.append(" DNS_LOOKUP=").append(this.lookups.summary());
+		for(String latency : this.getCommandLatencies()) {
+			report.append(" ").append(latency);
+		}
+		return report.toString();
+	}
+}
+
 class Client {
 	
 	//Possible commands the client can send to the server
@@ -371,6 +1353,7 @@ class Client {
 	public static final int LIST_DIRECTORY = 3;
 	public static final int SEND_FILE = 4;
 	public static final int RECIEVE_FILE = 5;
+	public static final int STATS = 6;
 	
 	//Address of the server
 	private String serverAddress;
@@ -550,6 +1533,30 @@ class Client {
 		}
 	}
 	
+	/**
+	 * Returns an instance of ServerStats with the server's statistics on a
+	 * single line stored in stats_. If the client hasn't authenticated,
+	 * StatsProblem is returned.
+	 * @return a ServerStats if the request was successful, otherwise a
+	 * StatsProblem
+	 */
+	public Response stats() throws Exception {
+		//Tell the server we want its statistics
+		this.outToServer.writeBytes(Client.STATS + "\n");
+		
+		//Are we allowed to do this?
+		boolean allowed =
+			Integer.parseInt(this.inFromServer.readLine()) == Server.SUCCESS;
+		
+		//Get and return the statistics if allowed
+		if(allowed) {
+			return new ServerStats(this.inFromServer.readLine());
+		}
+		else {
+			return new StatsProblem();
+		}
+	}
+	
 	/**
 	 * Takes a file, here represented by fileContent, sends it to
 	 * the server, which tries to store it in it's local directory
@@ -648,6 +1655,10 @@ class DirectoryProblem implements Response {}
 class TerminationRequestDenied implements Response {}
 class CannotSendFile implements Response {}
 class CannotRecieveFile implements Response {}
+class ServerStats implements Response {
+	public String stats_;
+	public ServerStats (String stats ) { stats_ = stats; } }
+class StatsProblem implements Response {}
 class FileContent implements Response {
 	public String fileData_;
 	public FileContent (String fileData ) { fileData_ = fileData; } }
\ No newline at end of file